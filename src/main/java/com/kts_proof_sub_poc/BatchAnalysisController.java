@@ -0,0 +1,95 @@
+package com.kts_proof_sub_poc;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/v1/admin")
+public class BatchAnalysisController {
+
+    private static final int MAX_PARALLELISM = 64;
+    private static final int MAX_IN_FLIGHT = 32;
+
+    private final BatchAnalysisService batchAnalysisService;
+
+    @Value("${batch_enabled:false}")
+    private boolean batchEnabled;
+
+    public BatchAnalysisController(BatchAnalysisService batchAnalysisService) {
+        this.batchAnalysisService = batchAnalysisService;
+    }
+
+    /**
+     * Re-scores every file under {@code inputDir} with the current model and prompt, writing JSON Lines to
+     * {@code outputFile}. Both paths are resolved against {@code batch_root_dir}. Re-running with the same output
+     * file resumes from its checkpoint. Disabled unless {@code batch_enabled=true}.
+     */
+    @PostMapping("/analyze/batch")
+    public ResponseEntity<?> startBatch(
+            @RequestParam String inputDir,
+            @RequestParam String outputFile,
+            @RequestParam(required = false) Integer parallelism,
+            @RequestParam(required = false, defaultValue = "4") Integer maxInFlight,
+            @RequestParam(required = false, defaultValue = "60") Integer requestsPerMinute) {
+
+        if (!batchEnabled) {
+            return disabled();
+        }
+        Path input = batchAnalysisService.resolve(inputDir);
+        Path output = batchAnalysisService.resolve(outputFile);
+        if (input == null || output == null) {
+            return ResponseEntity.badRequest().body(Map.of("error", "inputDir and outputFile must be inside batch_root_dir"));
+        }
+        if (!Files.isDirectory(input)) {
+            return ResponseEntity.badRequest().body(Map.of("error", "inputDir is not a directory: " + inputDir));
+        }
+        if (output.getParent() == null || !Files.isDirectory(output.getParent())) {
+            return ResponseEntity.badRequest().body(Map.of("error", "outputFile directory does not exist: " + outputFile));
+        }
+        if (!batchAnalysisService.isConfined(input, output)) {
+            return ResponseEntity.badRequest().body(Map.of("error", "inputDir and outputFile must be inside batch_root_dir"));
+        }
+        if (parallelism == null) {
+            parallelism = Math.min(Runtime.getRuntime().availableProcessors(), MAX_PARALLELISM);
+        }
+        if (parallelism < 1 || maxInFlight < 1 || requestsPerMinute < 1) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", "parallelism, maxInFlight and requestsPerMinute must be positive"));
+        }
+        if (parallelism > MAX_PARALLELISM || maxInFlight > MAX_IN_FLIGHT) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", "parallelism must be at most " + MAX_PARALLELISM
+                                          + " and maxInFlight at most " + MAX_IN_FLIGHT));
+        }
+
+        BatchAnalysisService.BatchRun run =
+                batchAnalysisService.start(input, output, parallelism, maxInFlight, requestsPerMinute);
+        if (run == null) {
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body(Map.of("error", "A batch run is already in progress"));
+        }
+        return ResponseEntity.accepted().body(run.toMap());
+    }
+
+    @GetMapping("/analyze/batch")
+    public ResponseEntity<?> batchStatus() {
+        if (!batchEnabled) {
+            return disabled();
+        }
+        BatchAnalysisService.BatchRun run = batchAnalysisService.current();
+        if (run == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(run.toMap());
+    }
+
+    private static ResponseEntity<?> disabled() {
+        return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "Batch analysis is disabled"));
+    }
+}
@@ -0,0 +1,492 @@
+package com.kts_proof_sub_poc;
+
+import com.google.genai.Client;
+import com.google.genai.types.*;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.tika.Tika;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * Offline re-analysis of stored evidence. Files are walked from a directory under {@code batch_root_dir} (stand-in for
+ * the object store), hashed and run through {@link CommonController#extract} on a fork-join pool, then re-read and sent
+ * to Gemini through a bounded, rate-limited stage. Every path gets one line in the JSON Lines output and every analyzed
+ * hash is recorded in a checkpoint file, so a restarted run skips work already done for the same scoring config.
+ * Only an interrupted run leaves paths without a line.
+ */
+@Service
+public class BatchAnalysisService {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchAnalysisService.class);
+
+    /**
+     * Same limit as {@code spring.servlet.multipart.max-file-size}; bigger files are not sent inline.
+     */
+    static final long MAX_INLINE_BYTES = 25L * 1024 * 1024;
+
+    private final ModelCall modelCall;
+    private final Tika tika;
+    private final String geminiModelId;
+    private final Path rootDir;
+    private final String runKey;
+    private final Gson gson = new Gson();
+    private final ExecutorService runner = Executors.newSingleThreadExecutor();
+    private final AtomicReference<BatchRun> current = new AtomicReference<>();
+
+    @Autowired
+    public BatchAnalysisService(Client geminiClient,
+                                Tika tika,
+                                @Value("${gemini_model_id}") String geminiModelId,
+                                @Value("${gemini_use_thinking:false}") String userThinking,
+                                @Value("${batch_root_dir}") String batchRootDir) {
+        this(geminiCall(geminiClient, geminiModelId, userThinking), tika, geminiModelId, userThinking,
+                Path.of(batchRootDir));
+    }
+
+    BatchAnalysisService(ModelCall modelCall, Tika tika, String geminiModelId, String userThinking, Path rootDir) {
+        this.modelCall = modelCall;
+        this.tika = tika;
+        this.geminiModelId = geminiModelId;
+        this.rootDir = rootDir.toAbsolutePath().normalize();
+        // Skip key for the checkpoint: changing the model, the prompt or the thinking setting re-scores everything
+        this.runKey = DigestUtils.sha256Hex(geminiModelId + "\n"
+                                            + CommonController.thinkingEnabled(userThinking) + "\n"
+                                            + CommonController.ANALYZE_PROMPT);
+    }
+
+    /**
+     * Resolves {@code path} against {@code batch_root_dir}. Returns {@code null} if it points outside the root.
+     */
+    public Path resolve(String path) {
+        Path resolved = rootDir.resolve(path).normalize();
+        return resolved.startsWith(rootDir) ? resolved : null;
+    }
+
+    /**
+     * Checks the real locations of {@code inputDir} and the parent of {@code outputFile} against the real root, so a
+     * symlink inside the root cannot point the run elsewhere. The output and checkpoint files must not be symlinks.
+     */
+    public boolean isConfined(Path inputDir, Path outputFile) {
+        try {
+            Path realRoot = rootDir.toRealPath();
+            return inputDir.toRealPath().startsWith(realRoot)
+                   && outputFile.getParent() != null
+                   && outputFile.getParent().toRealPath().startsWith(realRoot)
+                   && !Files.isSymbolicLink(outputFile)
+                   && !Files.isSymbolicLink(checkpointFile(outputFile));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Starts a run in the background. Returns {@code null} if another run is still in progress.
+     */
+    public BatchRun start(Path inputDir, Path outputFile, int parallelism, int maxInFlight, int requestsPerMinute) {
+        BatchRun run = new BatchRun(inputDir, outputFile, parallelism, maxInFlight, requestsPerMinute);
+        BatchRun previous = current.get();
+        if (previous != null && !previous.isFinished()) {
+            return null;
+        }
+        if (!current.compareAndSet(previous, run)) {
+            return null;
+        }
+        runner.submit(() -> {
+            try {
+                execute(run);
+            } catch (InterruptedException e) {
+                log.warn("Batch run interrupted: {}", run.inputDir);
+                run.error = "Batch run interrupted";
+            } catch (Throwable e) {
+                log.error("Batch run failed: {}", run.inputDir, e);
+                run.error = String.valueOf(e);
+            } finally {
+                run.finishedAt = Instant.now();
+            }
+        });
+        return run;
+    }
+
+    public BatchRun current() {
+        return current.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // Interrupts the running batch; anything not yet checkpointed is picked up by the next run
+        runner.shutdownNow();
+    }
+
+    String runKey() {
+        return runKey;
+    }
+
+    void execute(BatchRun run) throws Exception {
+        if (!isConfined(run.inputDir, run.outputFile)) {
+            throw new IllegalArgumentException("inputDir and outputFile must be inside batch_root_dir");
+        }
+        Path checkpointFile = checkpointFile(run.outputFile);
+        Set<String> done = loadCheckpoint(checkpointFile, runKey);
+        Map<String, Path> claimed = new ConcurrentHashMap<>();
+        log.info("Batch run started: input={}, output={}, alreadyDone={}", run.inputDir, run.outputFile, done.size());
+
+        RateLimiter rateLimiter = new RateLimiter(run.requestsPerMinute);
+        Semaphore inFlight = new Semaphore(run.maxInFlight);
+        ForkJoinPool prepPool = new ForkJoinPool(run.parallelism);
+        ExecutorService modelPool = Executors.newFixedThreadPool(run.maxInFlight);
+        int chunkSize = run.parallelism * 4;
+
+        try (Stream<Path> files = Files.walk(run.inputDir);
+             ResultWriter writer = new ResultWriter(run.outputFile, checkpointFile)) {
+            try {
+                Iterator<Path> it = files
+                        .filter(path -> Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS))
+                        .filter(path -> !path.equals(run.outputFile) && !path.equals(checkpointFile))
+                        .iterator();
+                List<Path> chunk = new ArrayList<>(chunkSize);
+                boolean more = true;
+                while (more) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedException();
+                    }
+                    try {
+                        more = it.hasNext();
+                        if (more) {
+                            chunk.add(it.next());
+                        }
+                    } catch (UncheckedIOException e) {
+                        // The walk skips an unreadable directory and carries on with the rest of the tree
+                        recordUnreadable(e, run, writer);
+                        continue;
+                    }
+                    if (chunk.size() == chunkSize || (!more && !chunk.isEmpty())) {
+                        List<Path> paths = List.copyOf(chunk);
+                        chunk.clear();
+                        run.discovered.addAndGet(paths.size());
+
+                        // 1. Hash + extract in parallel; only the hash and extraction are kept per chunk
+                        List<PreparedFile> prepared = prepPool.submit(() -> paths.parallelStream()
+                                .map(path -> prepare(path, run, done, claimed, writer))
+                                .filter(Objects::nonNull)
+                                .toList()).get();
+
+                        // 2. Model calls, bounded by in-flight permits (blocks this loop for backpressure)
+                        for (PreparedFile file : prepared) {
+                            inFlight.acquire();
+                            modelPool.submit(() -> {
+                                try {
+                                    analyze(file, run, rateLimiter, writer);
+                                } finally {
+                                    inFlight.release();
+                                }
+                            });
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw e;
+            } finally {
+                prepPool.shutdownNow();
+                if (Thread.currentThread().isInterrupted()) {
+                    modelPool.shutdownNow();
+                } else {
+                    modelPool.shutdown();
+                }
+                // Wait for remaining model calls before closing the writers
+                awaitTermination(modelPool);
+            }
+        }
+
+        log.info("Batch run completed: input={}, analyzed={}, skipped={}, failed={}",
+                run.inputDir, run.analyzed.get(), run.skipped.get(), run.failed.get());
+    }
+
+    private PreparedFile prepare(Path path, BatchRun run, Set<String> done, Map<String, Path> claimed,
+                                 ResultWriter writer) {
+        String fileName = path.getFileName().toString();
+        Map<String, Object> line = newLine(run, path);
+        try {
+            long size = Files.size(path);
+            if (size > MAX_INLINE_BYTES) {
+                line.put("status", "failed");
+                line.put("error", "File exceeds " + MAX_INLINE_BYTES + " bytes: " + size);
+                writer.record(line, null, run.failed, run);
+                return null;
+            }
+            byte[] bytes = Files.readAllBytes(path);
+            String hash = DigestUtils.sha256Hex(bytes);
+            line.put("hash", hash);
+            if (done.contains(hash)) {
+                // Already analyzed by an earlier run with the same key, possibly under another path
+                line.put("status", "skipped");
+                line.put("reason", "checkpoint");
+                writer.record(line, null, run.skipped, run);
+                return null;
+            }
+            Path first = claimed.putIfAbsent(hash, path);
+            if (first != null) {
+                line.put("status", "skipped");
+                line.put("reason", "duplicate");
+                line.put("duplicateOf", run.inputDir.relativize(first).toString());
+                writer.record(line, null, run.skipped, run);
+                return null;
+            }
+            String contentType = tika.detect(bytes, fileName);
+            Map<String, Map<String, String>> extracted =
+                    CommonController.extract(new ByteArrayInputStream(bytes), contentType, fileName);
+            return new PreparedFile(path, hash, contentType, extracted);
+        } catch (OutOfMemoryError e) {
+            throw e;
+        } catch (Throwable e) {
+            // Parser errors (StackOverflowError, NoClassDefFoundError, ...) only fail this file
+            log.warn("Batch prepare failed for {}: {}", path, String.valueOf(e));
+            line.put("status", "failed");
+            line.put("error", String.valueOf(e));
+            writer.record(line, null, run.failed, run);
+            return null;
+        }
+    }
+
+    private void analyze(PreparedFile file, BatchRun run, RateLimiter rateLimiter, ResultWriter writer) {
+        Map<String, Object> line = newLine(run, file.path);
+        line.put("hash", file.hash);
+        line.put("local_extraction", file.extracted);
+
+        try {
+            rateLimiter.acquire();
+            // Re-read here so only in-flight calls hold file bytes
+            byte[] bytes = Files.readAllBytes(file.path);
+            if (!DigestUtils.sha256Hex(bytes).equals(file.hash)) {
+                // Never checkpoint a hash whose bytes were not the ones scored
+                line.put("status", "failed");
+                line.put("error", "File changed since it was hashed");
+                writer.record(line, null, run.failed, run);
+                return;
+            }
+            String prompt = CommonController.analyzePrompt(gson.toJson(file.extracted));
+            JsonObject parsed = CommonController.parseModelOutput(modelCall.generate(prompt, bytes, file.contentType));
+            line.put("status", "analyzed");
+            line.put("analysis", gson.fromJson(parsed, Map.class));
+            writer.record(line, file.hash, run.analyzed, run);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            line.put("status", "failed");
+            line.put("error", "Batch run interrupted");
+            writer.record(line, null, run.failed, run);
+        } catch (OutOfMemoryError e) {
+            throw e;
+        } catch (Throwable e) {
+            log.warn("Batch analysis failed for {}: {}", file.path, String.valueOf(e));
+            line.put("status", "failed");
+            line.put("error", String.valueOf(e));
+            writer.record(line, null, run.failed, run);
+        }
+    }
+
+    private void recordUnreadable(UncheckedIOException e, BatchRun run, ResultWriter writer) {
+        Path path = run.inputDir;
+        if (e.getCause() instanceof FileSystemException fse && fse.getFile() != null) {
+            path = Path.of(fse.getFile());
+        }
+        log.warn("Batch walk failed for {}: {}", path, e.getMessage());
+        run.discovered.incrementAndGet();
+        Map<String, Object> line = newLine(run, path);
+        line.put("status", "failed");
+        line.put("error", String.valueOf(e.getCause().getMessage()));
+        writer.record(line, null, run.failed, run);
+    }
+
+    private Map<String, Object> newLine(BatchRun run, Path path) {
+        Map<String, Object> line = new LinkedHashMap<>();
+        line.put("fileName", path.getFileName().toString());
+        line.put("path", run.inputDir.relativize(path).toString());
+        line.put("model", geminiModelId);
+        line.put("runKey", runKey);
+        return line;
+    }
+
+    static Path checkpointFile(Path outputFile) {
+        return outputFile.resolveSibling(outputFile.getFileName() + ".checkpoint");
+    }
+
+    static Set<String> loadCheckpoint(Path checkpointFile, String runKey) throws IOException {
+        Set<String> done = ConcurrentHashMap.newKeySet();
+        if (Files.exists(checkpointFile)) {
+            try (Stream<String> lines = Files.lines(checkpointFile, StandardCharsets.UTF_8)) {
+                lines.map(String::trim)
+                        .filter(l -> l.startsWith(runKey + " "))
+                        .forEach(l -> done.add(l.substring(runKey.length() + 1)));
+            }
+        }
+        return done;
+    }
+
+    private static void awaitTermination(ExecutorService pool) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.info("Waiting for in-flight batch model calls");
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static ModelCall geminiCall(Client geminiClient, String geminiModelId, String userThinking) {
+        GenerateContentConfig config = CommonController.generateContentConfig(userThinking);
+        return (prompt, bytes, contentType) -> {
+            Content content = Content.builder()
+                    .parts(List.of(Part.fromText(prompt), Part.fromBytes(bytes, contentType)))
+                    .build();
+            return geminiClient.models.generateContent(geminiModelId, content, config).text();
+        };
+    }
+
+    /**
+     * The model call of the batch stage; returns the raw response text.
+     */
+    @FunctionalInterface
+    interface ModelCall {
+        String generate(String prompt, byte[] bytes, String contentType) throws Exception;
+    }
+
+    private record PreparedFile(Path path,
+                                String hash,
+                                String contentType,
+                                Map<String, Map<String, String>> extracted) {
+    }
+
+    /**
+     * Appends output lines and checkpoint entries. The result is flushed before its checkpoint entry, so a crash in
+     * between re-analyzes the file rather than losing it.
+     */
+    private final class ResultWriter implements Closeable {
+        private final BufferedWriter output;
+        private final BufferedWriter checkpoint;
+
+        ResultWriter(Path outputFile, Path checkpointFile) throws IOException {
+            this.output = Files.newBufferedWriter(outputFile, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND, LinkOption.NOFOLLOW_LINKS);
+            this.checkpoint = Files.newBufferedWriter(checkpointFile, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND, LinkOption.NOFOLLOW_LINKS);
+        }
+
+        /**
+         * Writes {@code line}, checkpoints {@code hash} if not null and bumps {@code counter}; a failed write counts
+         * as failed instead.
+         */
+        synchronized void record(Map<String, Object> line, String hash, AtomicInteger counter, BatchRun run) {
+            try {
+                output.write(gson.toJson(line));
+                output.newLine();
+                output.flush();
+                if (hash != null) {
+                    checkpoint.write(runKey + " " + hash);
+                    checkpoint.newLine();
+                    checkpoint.flush();
+                }
+                counter.incrementAndGet();
+            } catch (IOException e) {
+                log.error("Batch write failed for {}", line.get("path"), e);
+                run.failed.incrementAndGet();
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try (output; checkpoint) {
+                output.flush();
+                checkpoint.flush();
+            }
+        }
+    }
+
+    /**
+     * Spaces calls evenly so that at most {@code requestsPerMinute} start in any minute.
+     */
+    static final class RateLimiter {
+        private final long intervalNanos;
+        private long nextSlot = System.nanoTime();
+
+        RateLimiter(int requestsPerMinute) {
+            this.intervalNanos = TimeUnit.MINUTES.toNanos(1) / requestsPerMinute;
+        }
+
+        void acquire() throws InterruptedException {
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                wait = nextSlot - now;
+                nextSlot = Math.max(nextSlot, now) + intervalNanos;
+            }
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+
+    public static final class BatchRun {
+        private final Path inputDir;
+        private final Path outputFile;
+        private final int parallelism;
+        private final int maxInFlight;
+        private final int requestsPerMinute;
+        private final Instant startedAt = Instant.now();
+        private final AtomicInteger discovered = new AtomicInteger();
+        private final AtomicInteger analyzed = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private volatile Instant finishedAt;
+        private volatile String error;
+
+        BatchRun(Path inputDir, Path outputFile, int parallelism, int maxInFlight, int requestsPerMinute) {
+            this.inputDir = inputDir;
+            this.outputFile = outputFile;
+            this.parallelism = parallelism;
+            this.maxInFlight = maxInFlight;
+            this.requestsPerMinute = requestsPerMinute;
+        }
+
+        public boolean isFinished() {
+            return finishedAt != null;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("inputDir", inputDir.toString());
+            map.put("outputFile", outputFile.toString());
+            map.put("parallelism", parallelism);
+            map.put("maxInFlight", maxInFlight);
+            map.put("requestsPerMinute", requestsPerMinute);
+            map.put("startedAt", startedAt.toString());
+            map.put("finishedAt", finishedAt == null ? null : finishedAt.toString());
+            map.put("discovered", discovered.get());
+            map.put("analyzed", analyzed.get());
+            map.put("skipped", skipped.get());
+            map.put("failed", failed.get());
+            map.put("error", error);
+            return map;
+        }
+    }
+}
@@ -99,7 +99,45 @@ public class CommonController {
         String extractedJson = gson.toJson(extracted);
 
         // 3. Prompt for Gemini
-        String prompt = """
+        String prompt = analyzePrompt(extractedJson);
+
+        // 4. Config (enable/disable thinking)
+        GenerateContentConfig config = generateContentConfig(userThinking);
+
+        // 5. Build parts
+        List<Part> parts = new ArrayList<>();
+        parts.add(Part.fromText(prompt));
+        if (file != null) {
+            parts.add(Part.fromBytes(file.getBytes(), contentType));
+        } else {
+            parts.add(Part.fromUri(publicUrl, contentType));
+        }
+
+        Content content = Content.builder().parts(parts).build();
+
+        // 7. Call Gemini
+        GenerateContentResponse geminiResponse = geminiClient.models
+                .generateContent(geminiModelId, content, config);
+
+        String rawText = geminiResponse.text();
+        log.info("Gemini response: {}", rawText);
+
+        // 8. Try to parse JSON safely
+        JsonObject parsed = parseModelOutput(rawText);
+
+        // 9. Build final response
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("fileName", fileName);
+        response.put("hash", sha256Hash);
+        response.put("local_extraction", extracted);
+        response.put("analysis", gson.fromJson(parsed, Map.class));
+
+        log.info("Analysis completed for {}: {}", fileName, response);
+
+        return ResponseEntity.ok(response);
+    }
+
+    static final String ANALYZE_PROMPT = """
                                     You are a forensic media analysis expert.
 
                                     Task:
@@ -174,41 +212,35 @@ public class CommonController {
                                     Return JSON only with keys: exif, geolocation, metadata, tampering, description
                                     Include all metadata and exif from local extraction also in response.
                                     Known Metadata (from local extraction):
-                                """ + extractedJson + "\n\nCurrent Date Time in UTC: " + new Date();
+                                """;
 
-        // 4. Config (enable/disable thinking)
-        boolean enableThinking = userThinking != null &&
-                                 List.of("true", "yes").contains(userThinking.trim().toLowerCase());
-        GenerateContentConfig config = GenerateContentConfig.builder()
+    /**
+     * Prompt used by {@code /analyze}; shared with the batch re-analysis pipeline so both score evidence the same way.
+     */
+    static String analyzePrompt(String extractedJson) {
+        return ANALYZE_PROMPT + extractedJson + "\n\nCurrent Date Time in UTC: " + new Date();
+    }
+
+    static boolean thinkingEnabled(String userThinking) {
+        return userThinking != null &&
+               List.of("true", "yes").contains(userThinking.trim().toLowerCase());
+    }
+
+    static GenerateContentConfig generateContentConfig(String userThinking) {
+        return GenerateContentConfig.builder()
                 .thinkingConfig(
                         ThinkingConfig.builder()
-                                .thinkingBudget(enableThinking ? 1 : 0)
+                                .thinkingBudget(thinkingEnabled(userThinking) ? 1 : 0)
                                 .build()
                 )
                 .build();
+    }
 
-        // 5. Build parts
-        List<Part> parts = new ArrayList<>();
-        parts.add(Part.fromText(prompt));
-        if (file != null) {
-            parts.add(Part.fromBytes(file.getBytes(), contentType));
-        } else {
-            parts.add(Part.fromUri(publicUrl, contentType));
-        }
-
-        Content content = Content.builder().parts(parts).build();
-
-        // 7. Call Gemini
-        GenerateContentResponse geminiResponse = geminiClient.models
-                .generateContent(geminiModelId, content, config);
-
-        String rawText = geminiResponse.text();
+    static JsonObject parseModelOutput(String rawText) {
         String rawOutput = Objects.requireNonNull(rawText)
                 .replaceAll("(?s)^```json\\s*|\\s*```$", "")
                 .trim();
-        log.info("Gemini response: {}", rawOutput);
 
-        // 8. Try to parse JSON safely
         JsonObject parsed;
         try {
             parsed = JsonParser.parseString(rawOutput).getAsJsonObject();
@@ -216,17 +248,7 @@ public class CommonController {
             parsed = new JsonObject();
             parsed.addProperty("raw_output", rawOutput);
         }
-
-        // 9. Build final response
-        Map<String, Object> response = new LinkedHashMap<>();
-        response.put("fileName", fileName);
-        response.put("hash", sha256Hash);
-        response.put("local_extraction", extracted);
-        response.put("analysis", gson.fromJson(parsed, Map.class));
-
-        log.info("Analysis completed for {}: {}", fileName, response);
-
-        return ResponseEntity.ok(response);
+        return parsed;
     }
 
     private static final Set<String> IMAGE_TYPES = Set.of("image/jpeg", "image/png", "image/tiff", "image/webp");
@@ -536,15 +558,7 @@ public class CommonController {
                 """.formatted(inputPrompt, quantity, units, extractedJson, new Date());
 
         // 4. Config (enable/disable thinking)
-        boolean enableThinking = userThinking != null &&
-                                 List.of("true", "yes").contains(userThinking.trim().toLowerCase());
-        GenerateContentConfig config = GenerateContentConfig.builder()
-                .thinkingConfig(
-                        ThinkingConfig.builder()
-                                .thinkingBudget(enableThinking ? 1 : 0)
-                                .build()
-                )
-                .build();
+        GenerateContentConfig config = generateContentConfig(userThinking);
 
         // 5. Build parts
         List<Part> parts = new ArrayList<>();
@@ -565,19 +579,10 @@ public class CommonController {
                 .generateContent(geminiModelId, content, config);
 
         String rawText = geminiResponse.text();
-        String rawOutput = Objects.requireNonNull(rawText)
-                .replaceAll("(?s)^```json\\s*|\\s*```$", "")
-                .trim();
-        log.info("Gemini response: {}", rawOutput);
+        log.info("Gemini response: {}", rawText);
 
         // 8. Try to parse JSON safely
-        JsonObject parsed;
-        try {
-            parsed = JsonParser.parseString(rawOutput).getAsJsonObject();
-        } catch (Exception e) {
-            parsed = new JsonObject();
-            parsed.addProperty("raw_output", rawOutput);
-        }
+        JsonObject parsed = parseModelOutput(rawText);
 
         // 9. Build final response
         Map<String, Object> response = new LinkedHashMap<>();
@@ -0,0 +1,257 @@
+package com.kts_proof_sub_poc;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.tika.Tika;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchAnalysisServiceTests {
+
+	@TempDir
+	Path root;
+
+	@TempDir
+	Path outside;
+
+	@Test
+	void loadCheckpointKeepsOnlyMatchingRunKey() throws Exception {
+		Path checkpoint = root.resolve("out.jsonl.checkpoint");
+		Files.write(checkpoint, List.of("k1 h1", "k2 h2", "k1 h3", ""));
+
+		assertEquals(Set.of("h1", "h3"), BatchAnalysisService.loadCheckpoint(checkpoint, "k1"));
+		assertEquals(Set.of("h2"), BatchAnalysisService.loadCheckpoint(checkpoint, "k2"));
+		assertTrue(BatchAnalysisService.loadCheckpoint(root.resolve("missing"), "k1").isEmpty());
+	}
+
+	@Test
+	void rateLimiterSpacesCalls() throws Exception {
+		BatchAnalysisService.RateLimiter limiter = new BatchAnalysisService.RateLimiter(600); // 100ms apart
+		long start = System.nanoTime();
+		for (int i = 0; i < 4; i++) {
+			limiter.acquire();
+		}
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(elapsedMillis >= 290, "elapsed " + elapsedMillis + "ms");
+	}
+
+	@Test
+	void resolveRejectsPathsOutsideRoot() {
+		BatchAnalysisService service = service((prompt, bytes, contentType) -> "{}", "false");
+
+		assertEquals(root.resolve("in").toAbsolutePath().normalize(), service.resolve("in"));
+		assertNull(service.resolve("../etc"));
+		assertNull(service.resolve("/etc/passwd"));
+	}
+
+	@Test
+	void symlinksCannotLeaveRoot() throws Exception {
+		Path input = Files.createDirectory(root.resolve("in"));
+		Files.writeString(outside.resolve("secret.txt"), "secret");
+		Files.createSymbolicLink(root.resolve("link"), outside);
+		Files.createSymbolicLink(root.resolve("linked.jsonl"), outside.resolve("x.jsonl"));
+		BatchAnalysisService service = service((prompt, bytes, contentType) -> "{}", "false");
+
+		assertTrue(service.isConfined(input, root.resolve("out.jsonl")));
+		// Textually inside the root, but resolve to the outside directory
+		assertNotNull(service.resolve("link"));
+		assertFalse(service.isConfined(service.resolve("link"), root.resolve("out.jsonl")));
+		assertFalse(service.isConfined(input, service.resolve("link/x.jsonl")));
+		assertFalse(service.isConfined(input, service.resolve("linked.jsonl")));
+
+		BatchAnalysisService.BatchRun run =
+				new BatchAnalysisService.BatchRun(root.resolve("link"), root.resolve("out.jsonl"), 1, 1, 60_000);
+		assertThrows(IllegalArgumentException.class, () -> service.execute(run));
+		assertFalse(Files.exists(root.resolve("out.jsonl")));
+		assertFalse(Files.exists(outside.resolve("x.jsonl")));
+	}
+
+	@Test
+	void fileChangedBeforeModelCallIsNotCheckpointed() throws Exception {
+		Path input = Files.createDirectory(root.resolve("in"));
+		Path file = input.resolve("a.txt");
+		Files.writeString(file, "before");
+		Path output = root.resolve("out.jsonl");
+		BatchAnalysisService service = new BatchAnalysisService((prompt, bytes, contentType) -> "{}", new Tika() {
+			@Override
+			public String detect(byte[] prefix, String name) {
+				// Runs between hashing and the model stage
+				try {
+					Files.writeString(file, "after");
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+				return super.detect(prefix, name);
+			}
+		}, "test-model", "false", root);
+
+		Map<String, Object> counts = run(service, input, output);
+		assertCounts(counts, 1, 0, 0, 1);
+		assertTrue(BatchAnalysisService.loadCheckpoint(BatchAnalysisService.checkpointFile(output), service.runKey())
+				.isEmpty());
+		JsonObject line = JsonParser.parseString(Files.readAllLines(output).get(0)).getAsJsonObject();
+		assertEquals("failed", line.get("status").getAsString());
+	}
+
+	@Test
+	void parserErrorFailsOnlyThatFile() throws Exception {
+		Path input = Files.createDirectory(root.resolve("in"));
+		Files.writeString(input.resolve("a.txt"), "first");
+		Files.writeString(input.resolve("bad.txt"), "second");
+		Path output = root.resolve("out.jsonl");
+		BatchAnalysisService service = new BatchAnalysisService((prompt, bytes, contentType) -> "{}", new Tika() {
+			@Override
+			public String detect(byte[] prefix, String name) {
+				if (name.equals("bad.txt")) {
+					throw new StackOverflowError();
+				}
+				return super.detect(prefix, name);
+			}
+		}, "test-model", "false", root);
+
+		Map<String, Object> counts = run(service, input, output);
+		assertCounts(counts, 2, 1, 0, 1);
+		assertEquals(2, Files.readAllLines(output).size());
+	}
+
+	@Test
+	void failedFilesAreRetriedOnResume() throws Exception {
+		Path input = Files.createDirectory(root.resolve("in"));
+		Files.writeString(input.resolve("a.txt"), "first");
+		Files.writeString(input.resolve("b.txt"), "second");
+		Path output = root.resolve("out.jsonl");
+
+		AtomicInteger calls = new AtomicInteger();
+		BatchAnalysisService failing = service((prompt, bytes, contentType) -> {
+			calls.incrementAndGet();
+			if (new String(bytes, StandardCharsets.UTF_8).equals("second")) {
+				throw new IllegalStateException("model unavailable");
+			}
+			return "{\"ok\":true}";
+		}, "false");
+		Map<String, Object> first = run(failing, input, output);
+		assertEquals(2, calls.get());
+		assertCounts(first, 2, 1, 0, 1);
+		assertEquals(2, Files.readAllLines(output).size());
+
+		// Result is written before the checkpoint, so only the successful hash is checkpointed
+		Path checkpoint = BatchAnalysisService.checkpointFile(output);
+		assertEquals(Set.of(DigestUtils.sha256Hex("first")),
+				BatchAnalysisService.loadCheckpoint(checkpoint, failing.runKey()));
+
+		calls.set(0);
+		BatchAnalysisService working = service((prompt, bytes, contentType) -> {
+			calls.incrementAndGet();
+			return "{\"ok\":true}";
+		}, "false");
+		Map<String, Object> second = run(working, input, output);
+		assertEquals(1, calls.get());
+		assertCounts(second, 2, 1, 1, 0);
+
+		List<String> lines = Files.readAllLines(output);
+		assertEquals(4, lines.size());
+		JsonObject skipped = JsonParser.parseString(lines.get(2)).getAsJsonObject();
+		assertEquals("a.txt", skipped.get("path").getAsString());
+		assertEquals("checkpoint", skipped.get("reason").getAsString());
+		JsonObject last = JsonParser.parseString(lines.get(3)).getAsJsonObject();
+		assertEquals("b.txt", last.get("path").getAsString());
+		assertEquals("analyzed", last.get("status").getAsString());
+		assertEquals(working.runKey(), last.get("runKey").getAsString());
+	}
+
+	@Test
+	void lostCheckpointReanalyzes() throws Exception {
+		Path input = Files.createDirectory(root.resolve("in"));
+		Files.writeString(input.resolve("a.txt"), "first");
+		Path output = root.resolve("out.jsonl");
+		AtomicInteger calls = new AtomicInteger();
+		BatchAnalysisService service = service((prompt, bytes, contentType) -> {
+			calls.incrementAndGet();
+			return "{}";
+		}, "false");
+
+		run(service, input, output);
+		// Simulates a crash after the result line was flushed but before its checkpoint entry
+		Files.writeString(BatchAnalysisService.checkpointFile(output), "");
+		run(service, input, output);
+
+		assertEquals(2, calls.get());
+		assertEquals(2, Files.readAllLines(output).size());
+	}
+
+	@Test
+	void thinkingSettingChangesRunKey() throws Exception {
+		Path input = Files.createDirectory(root.resolve("in"));
+		Files.writeString(input.resolve("a.txt"), "first");
+		Path output = root.resolve("out.jsonl");
+		AtomicInteger calls = new AtomicInteger();
+		BatchAnalysisService.ModelCall model = (prompt, bytes, contentType) -> {
+			calls.incrementAndGet();
+			return "{}";
+		};
+
+		BatchAnalysisService withoutThinking = service(model, "false");
+		BatchAnalysisService withThinking = service(model, "yes");
+		assertNotEquals(withoutThinking.runKey(), withThinking.runKey());
+
+		run(withoutThinking, input, output);
+		run(withThinking, input, output);
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	void duplicatesAndOversizedFilesGetALine() throws Exception {
+		Path input = Files.createDirectory(root.resolve("in"));
+		Files.writeString(input.resolve("a.txt"), "same");
+		Files.writeString(input.resolve("b.txt"), "same");
+		Files.write(input.resolve("big.bin"), new byte[(int) BatchAnalysisService.MAX_INLINE_BYTES + 1]);
+		Path output = root.resolve("out.jsonl");
+		AtomicInteger calls = new AtomicInteger();
+		BatchAnalysisService service = service((prompt, bytes, contentType) -> {
+			calls.incrementAndGet();
+			return "{}";
+		}, "false");
+
+		Map<String, Object> counts = run(service, input, output);
+		assertEquals(1, calls.get());
+		assertCounts(counts, 3, 1, 1, 1);
+
+		List<JsonObject> lines = Files.readAllLines(output).stream()
+				.map(line -> JsonParser.parseString(line).getAsJsonObject())
+				.toList();
+		assertEquals(3, lines.size());
+		assertEquals(1, lines.stream().filter(line -> line.has("duplicateOf")).count());
+		assertTrue(lines.stream().anyMatch(line -> line.get("path").getAsString().equals("big.bin")
+		                                            && line.get("status").getAsString().equals("failed")));
+	}
+
+	private BatchAnalysisService service(BatchAnalysisService.ModelCall modelCall, String userThinking) {
+		return new BatchAnalysisService(modelCall, new Tika(), "test-model", userThinking, root);
+	}
+
+	private static Map<String, Object> run(BatchAnalysisService service, Path input, Path output) throws Exception {
+		BatchAnalysisService.BatchRun run = new BatchAnalysisService.BatchRun(input, output, 2, 2, 60_000);
+		service.execute(run);
+		return run.toMap();
+	}
+
+	private static void assertCounts(Map<String, Object> counts, int discovered, int analyzed, int skipped,
+									 int failed) {
+		assertEquals(discovered, counts.get("discovered"));
+		assertEquals(analyzed, counts.get("analyzed"));
+		assertEquals(skipped, counts.get("skipped"));
+		assertEquals(failed, counts.get("failed"));
+	}
+}